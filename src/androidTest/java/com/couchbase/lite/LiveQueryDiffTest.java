@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class LiveQueryDiffTest extends LiteTestCaseWithDB {
+
+    public void testDiff() throws Exception {
+        View view = createNumbersView();
+
+        List<Document> docs = new ArrayList<Document>();
+        for (int i = 1; i <= 5; i++)
+            docs.add(createDocumentWithProperties(database, newProperties(i)));
+
+        Query query = view.createQuery();
+        QueryEnumerator rows1 = query.run();
+        assertTrue(LiveQueryDiff.compute(rows1, query.run()).isEmpty());
+
+        LiveQueryDiff initial = LiveQueryDiff.compute(null, rows1);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), initial.getInserted());
+
+        // Delete n=2, update n=3 in place, add n=6:
+        docs.get(1).delete();
+        Map<String, Object> props = new HashMap<String, Object>(docs.get(2).getProperties());
+        props.put("tag", "updated");
+        docs.get(2).putProperties(props);
+        createDocumentWithProperties(database, newProperties(6));
+
+        QueryEnumerator rows2 = query.run();
+        LiveQueryDiff diff = LiveQueryDiff.compute(rows1, rows2);
+        assertEquals(Arrays.asList(1), diff.getRemoved());
+        assertEquals(Arrays.asList(4), diff.getInserted());
+        assertEquals(Arrays.asList(1), diff.getChanged());
+        assertEquals(0, diff.getMoved().size());
+
+        // Reversing the order moves every row but one:
+        query.setDescending(true);
+        QueryEnumerator rows3 = query.run();
+        diff = LiveQueryDiff.compute(rows2, rows3);
+        assertEquals(0, diff.getRemoved().size());
+        assertEquals(0, diff.getInserted().size());
+        assertEquals(0, diff.getChanged().size());
+        assertEquals(rows2.getCount() - 1, diff.getMoved().size());
+    }
+
+    public void testDispatchUpdates() throws Exception {
+        View view = createNumbersView();
+        List<Document> docs = new ArrayList<Document>();
+        for (int i = 0; i <= 5; i++)
+            docs.add(createDocumentWithProperties(database, newProperties(i)));
+
+        Query query = view.createQuery();
+        QueryEnumerator rows1 = query.run();
+
+        // Remove n=0 and n=3, update n=4, add n=6 and n=7, and reverse the order:
+        docs.get(0).delete();
+        docs.get(3).delete();
+        Map<String, Object> props = new HashMap<String, Object>(docs.get(4).getProperties());
+        props.put("tag", "updated");
+        docs.get(4).putProperties(props);
+        createDocumentWithProperties(database, newProperties(6));
+        createDocumentWithProperties(database, newProperties(7));
+        query.setDescending(true);
+        QueryEnumerator rows2 = query.run();
+
+        LiveQueryDiff diff = LiveQueryDiff.compute(rows1, rows2);
+        assertEquals(2, diff.getRemoved().size());
+        assertEquals(2, diff.getInserted().size());
+        assertEquals(1, diff.getChanged().size());
+        assertTrue(diff.getMoved().size() > 0);
+        assertDispatchUpdates(diff, rows1, rows2);
+    }
+
+    public void testDispatchUpdatesRemoveAndMove() throws Exception {
+        View view = createNumbersView();
+        List<Document> docs = new ArrayList<Document>();
+        for (int i = 0; i < 3; i++)
+            docs.add(createDocumentWithProperties(database, newProperties(i)));
+
+        // [0, 1, 2] -> [2, 1]: the move's old source position is out of range once row 0 is
+        // removed, so the dispatched move has to use the adjusted position:
+        Query query = view.createQuery();
+        QueryEnumerator rows1 = query.run();
+        docs.get(0).delete();
+        query.setDescending(true);
+        QueryEnumerator rows2 = query.run();
+
+        LiveQueryDiff diff = LiveQueryDiff.compute(rows1, rows2);
+        assertEquals(Arrays.asList(0), diff.getRemoved());
+        assertEquals(1, diff.getMoved().size());
+        assertDispatchUpdates(diff, rows1, rows2);
+    }
+
+    public void testChangeListener() throws Exception {
+        View view = createNumbersView();
+        for (int i = 1; i <= 3; i++)
+            createDocumentWithProperties(database, newProperties(i));
+
+        final BlockingQueue<LiveQueryDiff> diffs = new LinkedBlockingQueue<LiveQueryDiff>();
+        LiveQuery liveQuery = view.createQuery().toLiveQuery();
+        liveQuery.addChangeListener(new LiveQueryDiff.ChangeListener() {
+            @Override
+            public void rowsChanged(QueryEnumerator rows, LiveQueryDiff diff) {
+                diffs.add(diff);
+            }
+        });
+        liveQuery.start();
+        try {
+            LiveQueryDiff diff = diffs.poll(10, TimeUnit.SECONDS);
+            assertNotNull(diff);
+            assertEquals(Arrays.asList(0, 1, 2), diff.getInserted());
+
+            createDocumentWithProperties(database, newProperties(4));
+            // Results without any difference are not reported:
+            diff = diffs.poll(10, TimeUnit.SECONDS);
+            assertNotNull(diff);
+            assertEquals(Arrays.asList(3), diff.getInserted());
+            assertEquals(0, diff.getRemoved().size());
+            assertEquals(0, diff.getChanged().size());
+            assertEquals(0, diff.getMoved().size());
+        } finally {
+            liveQuery.stop();
+        }
+    }
+
+    /**
+     * Applies the dispatched updates to a list of the old rows and checks that it ends up
+     * matching the new rows.
+     */
+    private static void assertDispatchUpdates(LiveQueryDiff diff, QueryEnumerator oldRows,
+                                              QueryEnumerator newRows) {
+        final List<QueryRow> list = new ArrayList<QueryRow>();
+        for (int i = 0; i < oldRows.getCount(); i++)
+            list.add(oldRows.getRow(i));
+        final List<Integer> inserted = new ArrayList<Integer>();
+        final List<Integer> changed = new ArrayList<Integer>();
+        final int[] moves = new int[1];
+
+        // List.add() and remove() throw if a position is out of range:
+        diff.dispatchUpdatesTo(new LiveQueryDiff.Callback() {
+            @Override
+            public void onRemoved(int position) {
+                list.remove(position);
+            }
+
+            @Override
+            public void onInserted(int position) {
+                list.add(position, null);
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                list.add(toPosition, list.remove(fromPosition));
+                moves[0]++;
+            }
+
+            @Override
+            public void onChanged(int position) {
+                assertTrue(position < list.size());
+                changed.add(position);
+            }
+        });
+
+        assertEquals(newRows.getCount(), list.size());
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == null)
+                inserted.add(i);
+            else
+                assertTrue(LiveQueryDiff.isSameRow(list.get(i), newRows.getRow(i)));
+        }
+        assertEquals(diff.getInserted(), inserted);
+        assertEquals(diff.getChanged(), changed);
+        assertEquals(diff.getMoved().size(), moves[0]);
+    }
+
+    private View createNumbersView() {
+        View view = database.getView("numbers");
+        view.setMap(new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("n"), null);
+            }
+        }, "1");
+        return view;
+    }
+
+    private static Map<String, Object> newProperties(int n) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("n", n);
+        return props;
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class LiveQueryRegistryTest extends LiteTestCaseWithDB {
+
+    public void testShareEquivalentQueries() throws Exception {
+        View view = createDocIDView();
+        for (int i = 1; i <= 3; i++)
+            createDocumentWithProperties(database, newProperties(i));
+
+        LiveQueryRegistry registry = new LiveQueryRegistry();
+        try {
+            final BlockingQueue<Integer> counts1 = new LinkedBlockingQueue<Integer>();
+            final BlockingQueue<Integer> counts2 = new LinkedBlockingQueue<Integer>();
+            Query query1 = view.createQuery();
+            Query query2 = view.createQuery();
+            LiveQueryRegistry.ChangeListener listener1 = newListener(counts1);
+            LiveQueryRegistry.ChangeListener listener2 = newListener(counts2);
+
+            registry.addChangeListener(query1, 0, listener1);
+            assertEquals(Integer.valueOf(3), counts1.poll(10, TimeUnit.SECONDS));
+            // An equivalent query joins the running one and gets its latest results:
+            registry.addChangeListener(query2, 0, listener2);
+            assertEquals(Integer.valueOf(3), counts2.poll(10, TimeUnit.SECONDS));
+            assertEquals(1, registry.getSharedQueryCount());
+            assertEquals(1, registry.getExecutionCount());
+
+            // A query with different options isn't shared:
+            Query descending = view.createQuery();
+            descending.setDescending(true);
+            LiveQueryRegistry.ChangeListener listener3 =
+                    newListener(new LinkedBlockingQueue<Integer>());
+            registry.addChangeListener(descending, 0, listener3);
+            assertEquals(2, registry.getSharedQueryCount());
+            registry.removeChangeListener(descending, listener3);
+            assertEquals(1, registry.getSharedQueryCount());
+
+            createDocumentWithProperties(database, newProperties(4));
+            assertEquals(Integer.valueOf(4), counts1.poll(10, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(4), counts2.poll(10, TimeUnit.SECONDS));
+
+            registry.removeChangeListener(query1, listener1);
+            assertEquals(1, registry.getSharedQueryCount());
+            registry.removeChangeListener(query2, listener2);
+            assertEquals(0, registry.getSharedQueryCount());
+        } finally {
+            registry.close();
+        }
+    }
+
+    public void testRateLimitUpdates() throws Exception {
+        final int numDocs = 20;
+        View view = createDocIDView();
+
+        LiveQueryRegistry registry = new LiveQueryRegistry();
+        try {
+            final BlockingQueue<Integer> counts = new LinkedBlockingQueue<Integer>();
+            Query query = view.createQuery();
+            registry.addChangeListener(query, 200, newListener(counts));
+            assertEquals(Integer.valueOf(0), counts.poll(10, TimeUnit.SECONDS));
+
+            // Each document is saved in its own transaction, so each fires its own change:
+            createDocuments(database, numDocs, false);
+            Integer count;
+            do {
+                count = counts.poll(10, TimeUnit.SECONDS);
+                assertNotNull(count);
+            } while (count < numDocs);
+            assertTrue(registry.getExecutionCount() < numDocs + 1);
+        } finally {
+            registry.close();
+        }
+    }
+
+    private static LiveQueryRegistry.ChangeListener newListener(
+            final BlockingQueue<Integer> counts) {
+        return new LiveQueryRegistry.ChangeListener() {
+            @Override
+            public void changed(Query query, QueryEnumerator rows) {
+                counts.add(rows.getCount());
+            }
+        };
+    }
+
+    private View createDocIDView() {
+        View view = database.getView("docIDs");
+        view.setMap(new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("_id"), null);
+            }
+        }, "1");
+        return view;
+    }
+
+    private static Map<String, Object> newProperties(int n) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("n", n);
+        return props;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class QueryPagerTest extends LiteTestCaseWithDB {
+
+    public void testPageAllDocs() throws Exception {
+        createDocuments(database, 25);
+
+        QueryPager pager = new QueryPager(database.createAllDocumentsQuery(), 10);
+        List<String> docIDs = new ArrayList<String>();
+        int[] expectedSizes = {10, 10, 5};
+        for (int expectedSize : expectedSizes) {
+            assertTrue(pager.hasMore());
+            List<QueryRow> page = pager.nextPage();
+            assertEquals(expectedSize, page.size());
+            for (QueryRow row : page)
+                docIDs.add(row.getDocumentId());
+        }
+        assertEquals(0, pager.nextPage().size());
+        assertFalse(pager.hasMore());
+
+        assertEquals(25, docIDs.size());
+        for (int i = 1; i < docIDs.size(); i++)
+            assertTrue(docIDs.get(i - 1).compareTo(docIDs.get(i)) < 0);
+    }
+
+    public void testPageViewWithDuplicateKeys() throws Exception {
+        View view = createGroupView(12);
+
+        QueryPager pager = new QueryPager(view.createQuery(), 4);
+        List<String> docIDs = new ArrayList<String>();
+        List<QueryRow> page;
+        while ((page = pager.nextPage()).size() > 0) {
+            for (QueryRow row : page) {
+                assertFalse(docIDs.contains(row.getDocumentId()));
+                docIDs.add(row.getDocumentId());
+            }
+        }
+        assertEquals(12, docIDs.size());
+
+        // Resume from a persisted cursor:
+        QueryPager resumed = new QueryPager(view.createQuery(), 4);
+        resumed.resumeAfter(0, docIDs.get(5));
+        page = resumed.nextPage();
+        assertEquals(4, page.size());
+        for (int i = 0; i < page.size(); i++)
+            assertEquals(docIDs.get(6 + i), page.get(i).getDocumentId());
+
+        // A cursor key that went through a Long must still match the row's Integer key:
+        resumed = new QueryPager(view.createQuery(), 4);
+        resumed.resumeAfter(Long.valueOf(0), docIDs.get(5));
+        page = resumed.nextPage();
+        assertEquals(4, page.size());
+        for (int i = 0; i < page.size(); i++)
+            assertEquals(docIDs.get(6 + i), page.get(i).getDocumentId());
+    }
+
+    public void testSkipAndInclusiveStartOnlyApplyToFirstPage() throws Exception {
+        View view = createGroupView(12);
+        List<String> allDocIDs = new ArrayList<String>();
+        QueryEnumerator rows = view.createQuery().run();
+        for (int i = 0; i < rows.getCount(); i++)
+            allDocIDs.add(rows.getRow(i).getDocumentId());
+
+        Query query = view.createQuery();
+        query.setSkip(2);
+        query.setInclusiveStart(false);
+        QueryPager pager = new QueryPager(query, 4);
+        List<String> docIDs = new ArrayList<String>();
+        List<QueryRow> page;
+        while ((page = pager.nextPage()).size() > 0) {
+            for (QueryRow row : page)
+                docIDs.add(row.getDocumentId());
+        }
+        assertEquals(allDocIDs.subList(2, allDocIDs.size()), docIDs);
+    }
+
+    public void testPageDocumentsEmittingKeyTwice() throws Exception {
+        View view = database.getView("twice");
+        view.setMap(new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("group"), null);
+                emitter.emit(document.get("group"), null);
+            }
+        }, "1");
+        for (int i = 0; i < 3; i++) {
+            Map<String, Object> props = new HashMap<String, Object>();
+            props.put("group", 0);
+            createDocumentWithProperties(database, props);
+        }
+
+        List<String> allDocIDs = new ArrayList<String>();
+        QueryEnumerator rows = view.createQuery().run();
+        for (int i = 0; i < rows.getCount(); i++)
+            allDocIDs.add(rows.getRow(i).getDocumentId());
+        assertEquals(6, allDocIDs.size());
+
+        for (int pageSize = 1; pageSize <= 4; pageSize++) {
+            QueryPager pager = new QueryPager(view.createQuery(), pageSize);
+            List<String> docIDs = new ArrayList<String>();
+            List<QueryRow> page;
+            while ((page = pager.nextPage()).size() > 0) {
+                for (QueryRow row : page)
+                    docIDs.add(row.getDocumentId());
+                assertTrue(docIDs.size() <= allDocIDs.size());
+            }
+            assertEquals(allDocIDs, docIDs);
+        }
+
+        // After both rows of the first document, the cursor counts 2 rows:
+        QueryPager pager = new QueryPager(view.createQuery(), 1);
+        pager.nextPage();
+        pager.nextPage();
+        assertEquals(allDocIDs.get(0), pager.getLastDocID());
+        assertEquals(2, pager.getLastRowCount());
+
+        QueryPager resumed = new QueryPager(view.createQuery(), 2);
+        resumed.resumeAfter(pager.getLastKey(), pager.getLastDocID(), pager.getLastRowCount());
+        List<QueryRow> page = resumed.nextPage();
+        assertEquals(2, page.size());
+        assertEquals(allDocIDs.get(2), page.get(0).getDocumentId());
+        assertEquals(allDocIDs.get(3), page.get(1).getDocumentId());
+    }
+
+    private View createGroupView(int numberOfDocuments) throws Exception {
+        View view = database.getView("sameKey");
+        view.setMap(new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("group"), null);
+            }
+        }, "1");
+
+        for (int i = 0; i < numberOfDocuments; i++) {
+            Map<String, Object> props = new HashMap<String, Object>();
+            props.put("group", i % 2);
+            createDocumentWithProperties(database, props);
+        }
+        return view;
+    }
+}
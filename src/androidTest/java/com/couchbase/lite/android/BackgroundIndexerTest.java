@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.android;
+
+import com.couchbase.lite.Emitter;
+import com.couchbase.lite.LiteTestCaseWithDB;
+import com.couchbase.lite.Mapper;
+import com.couchbase.lite.View;
+
+import java.util.Map;
+
+public class BackgroundIndexerTest extends LiteTestCaseWithDB {
+
+    public void testBackgroundIndexerCatchesUp() throws Exception {
+        View view = database.getView("background");
+        view.setMap(new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("testName"), null);
+            }
+        }, "1");
+
+        BackgroundIndexer indexer = new BackgroundIndexer(database);
+        indexer.setMaxLag(0);
+        indexer.setUpdateDelay(0);
+        indexer.addView("background");
+        assertEquals(-1, indexer.getLag("missing"));
+        indexer.start();
+        try {
+            createDocuments(database, 10);
+            assertTrue(waitForLag(indexer, "background", 0, 10 * 1000));
+            assertEquals(database.getLastSequenceNumber(), view.getLastSequenceIndexed());
+
+            createDocuments(database, 10);
+            assertTrue(waitForLag(indexer, "background", 0, 10 * 1000));
+        } finally {
+            indexer.stop();
+        }
+        assertFalse(indexer.isRunning());
+
+        // stop() waits for the indexing thread, so nothing can index after it returns:
+        createDocuments(database, 5);
+        assertEquals(5, indexer.getLag("background"));
+    }
+
+    private static boolean waitForLag(BackgroundIndexer indexer, String viewName,
+                                      long lag, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (System.currentTimeMillis() < deadline) {
+            if (indexer.getLag(viewName) <= lag)
+                return true;
+            Thread.sleep(50);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.android;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Document;
+import com.couchbase.lite.DocumentChange;
+import com.couchbase.lite.LiteTestCaseWithDB;
+import com.couchbase.lite.util.Utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CoalescingChangeListenerTest extends LiteTestCaseWithDB {
+
+    public void testCoalesceEvents() throws Exception {
+        final int numDocs = 50;
+        final Set<String> deliveredDocIds = new HashSet<String>();
+        final AtomicInteger numEvents = new AtomicInteger();
+        final CountDownLatch doneSignal = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CoalescingChangeListener listener = new CoalescingChangeListener(
+                new Database.ChangeListener() {
+                    @Override
+                    public void changed(Database.ChangeEvent event) {
+                        numEvents.incrementAndGet();
+                        for (DocumentChange change : event.getChanges())
+                            deliveredDocIds.add(change.getDocumentId());
+                        if (deliveredDocIds.size() == numDocs)
+                            doneSignal.countDown();
+                    }
+                }, 200, executor, CoalescingChangeListener.DEFAULT_MAX_PENDING_CHANGES);
+        database.addChangeListener(listener);
+        try {
+            // Each document is saved in its own transaction, so each fires its own event:
+            createDocuments(database, numDocs, false);
+            assertTrue(doneSignal.await(10, TimeUnit.SECONDS));
+            assertTrue(numEvents.get() < numDocs);
+            assertEquals(numEvents.get(), listener.getDeliveredEventCount());
+            assertTrue(listener.getMergedEventCount() > 0);
+            assertEquals(0, listener.getDroppedChangeCount());
+        } finally {
+            database.removeChangeListener(listener);
+            Utils.shutdownAndAwaitTermination(executor);
+        }
+    }
+
+    public void testDeduplicateAndDropChanges() throws Exception {
+        final List<DocumentChange> delivered = new ArrayList<DocumentChange>();
+        final CountDownLatch doneSignal = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CoalescingChangeListener listener = new CoalescingChangeListener(
+                new Database.ChangeListener() {
+                    @Override
+                    public void changed(Database.ChangeEvent event) {
+                        delivered.addAll(event.getChanges());
+                        doneSignal.countDown();
+                    }
+                }, 0, executor, 2);
+
+        // Block delivery until all changes are pending:
+        final CountDownLatch blockSignal = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blockSignal.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        database.addChangeListener(listener);
+        try {
+            Document doc1 = createDocumentWithProperties(database, newProperties(1));
+            for (int i = 2; i <= 5; i++) {
+                Map<String, Object> props = new HashMap<String, Object>(doc1.getProperties());
+                props.put("value", i);
+                doc1.putProperties(props);
+            }
+            createDocumentWithProperties(database, newProperties(6));
+            Document doc3 = createDocumentWithProperties(database, newProperties(7));
+            blockSignal.countDown();
+
+            assertTrue(doneSignal.await(10, TimeUnit.SECONDS));
+            // doc1 was dropped as the oldest pending change once doc3 arrived:
+            assertEquals(2, delivered.size());
+            assertEquals(doc3.getId(), delivered.get(1).getDocumentId());
+            assertEquals(1, listener.getDroppedChangeCount());
+            // Every event after the first arrived while a delivery was pending:
+            assertEquals(6, listener.getMergedEventCount());
+        } finally {
+            database.removeChangeListener(listener);
+            Utils.shutdownAndAwaitTermination(executor);
+        }
+    }
+
+    public void testEventDuringDeliveryIsNotMerged() throws Exception {
+        final CountDownLatch deliveringSignal = new CountDownLatch(1);
+        final CountDownLatch blockSignal = new CountDownLatch(1);
+        final CountDownLatch doneSignal = new CountDownLatch(2);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CoalescingChangeListener listener = new CoalescingChangeListener(
+                new Database.ChangeListener() {
+                    @Override
+                    public void changed(Database.ChangeEvent event) {
+                        deliveringSignal.countDown();
+                        try {
+                            blockSignal.await();
+                        } catch (InterruptedException e) {
+                        }
+                        doneSignal.countDown();
+                    }
+                }, 0, executor, CoalescingChangeListener.DEFAULT_MAX_PENDING_CHANGES);
+        database.addChangeListener(listener);
+        try {
+            createDocumentWithProperties(database, newProperties(1));
+            assertTrue(deliveringSignal.await(10, TimeUnit.SECONDS));
+            // Nothing is pending while the first event is being delivered, so the second event
+            // gets a delivery of its own instead of being merged:
+            createDocumentWithProperties(database, newProperties(2));
+            assertEquals(1, listener.getPendingChangeCount());
+            assertEquals(0, listener.getMergedEventCount());
+            blockSignal.countDown();
+
+            assertTrue(doneSignal.await(10, TimeUnit.SECONDS));
+            assertEquals(0, listener.getMergedEventCount());
+        } finally {
+            database.removeChangeListener(listener);
+            Utils.shutdownAndAwaitTermination(executor);
+        }
+    }
+
+    private static Map<String, Object> newProperties(int value) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("value", value);
+        return props;
+    }
+}
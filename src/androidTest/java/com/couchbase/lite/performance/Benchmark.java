@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.performance;
+
+import android.os.Debug;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Minimal JMH-style harness for on-device microbenchmarks.
+ *
+ * Each fork starts from a collected heap, runs the warm-up iterations (discarded) and then the
+ * measurement iterations. Operations are timed in batches and each sample is the batch's mean
+ * time per operation, as with JMH's AverageTime mode, so that the cost of reading the clock
+ * doesn't dominate operations that take less than a microsecond. Percentiles are taken over
+ * these samples, so they only describe the latency of individual operations with a batch size
+ * of 1, and need enough batches per iteration to be meaningful.
+ *
+ * Allocation counting makes the runtime use slower, instrumented allocation paths, so it is
+ * only enabled for an extra, untimed iteration at the end of each fork.
+ */
+public class Benchmark {
+    public static abstract class Operation {
+        /**
+         * Called before each iteration, outside of the measured region.
+         */
+        public void setUpIteration() throws Exception {
+        }
+
+        public abstract void run() throws Exception;
+    }
+
+    public static class Result {
+        private final String name;
+        private final int batchSize;
+        private final long[] samples;
+        private final long operations;
+        private final long totalNanos;
+        private final long allocatedBytes;
+        private final long allocationOperations;
+
+        Result(String name, int batchSize, long[] samples, long operations, long totalNanos,
+               long allocatedBytes, long allocationOperations) {
+            this.name = name;
+            this.batchSize = batchSize;
+            this.samples = samples;
+            this.operations = operations;
+            this.totalNanos = totalNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.allocationOperations = allocationOperations;
+            Arrays.sort(this.samples);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        /**
+         * Number of operations timed together per sample.
+         */
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public int getSamples() {
+            return samples.length;
+        }
+
+        /**
+         * Percentile of the per-operation time of the samples (batches), in nanoseconds.
+         */
+        public long getPercentile(double percentile) {
+            if (samples.length == 0)
+                return 0;
+            int index = (int) Math.ceil(percentile / 100.0 * samples.length) - 1;
+            return samples[Math.max(0, Math.min(index, samples.length - 1))];
+        }
+
+        public double getMean() {
+            if (operations == 0)
+                return 0;
+            return (double) totalNanos / operations;
+        }
+
+        /**
+         * Bytes allocated per operation, or -1 if allocation counting is unavailable.
+         */
+        public long getAllocatedBytesPerOperation() {
+            if (allocatedBytes < 0 || allocationOperations == 0)
+                return -1;
+            return allocatedBytes / allocationOperations;
+        }
+
+        public Map<String, Object> asMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("name", name);
+            map.put("operations", operations);
+            map.put("batchSize", batchSize);
+            map.put("samples", samples.length);
+            map.put("meanNanos", getMean());
+            map.put("p50Nanos", getPercentile(50));
+            map.put("p90Nanos", getPercentile(90));
+            map.put("p99Nanos", getPercentile(99));
+            map.put("maxNanos", getPercentile(100));
+            map.put("allocatedBytesPerOp", getAllocatedBytesPerOperation());
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH,
+                    "%s: ops=%d batch=%d samples=%d mean=%.0fns p50=%dns p90=%dns p99=%dns " +
+                            "max=%dns alloc=%dB/op",
+                    name, operations, batchSize, samples.length, getMean(), getPercentile(50),
+                    getPercentile(90), getPercentile(99), getPercentile(100),
+                    getAllocatedBytesPerOperation());
+        }
+    }
+
+    private final String name;
+    private int forks = 1;
+    private int warmupIterations = 5;
+    private int measurementIterations = 10;
+    private int operationsPerIteration = 100;
+    private int batchSize;
+
+    public Benchmark(String name) {
+        this.name = name;
+    }
+
+    public void setForks(int forks) {
+        this.forks = forks;
+    }
+
+    public void setWarmupIterations(int warmupIterations) {
+        this.warmupIterations = warmupIterations;
+    }
+
+    public void setMeasurementIterations(int measurementIterations) {
+        this.measurementIterations = measurementIterations;
+    }
+
+    public void setOperationsPerIteration(int operationsPerIteration) {
+        this.operationsPerIteration = operationsPerIteration;
+    }
+
+    /**
+     * Number of operations timed together per sample; 0 (the default) times each iteration as
+     * a whole. Use 1 only for operations that take well over a microsecond.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public Result run(Operation operation) throws Exception {
+        int batch = batchSize > 0 ?
+                Math.min(batchSize, operationsPerIteration) : operationsPerIteration;
+        int batchesPerIteration = (operationsPerIteration + batch - 1) / batch;
+        long[] samples = new long[forks * measurementIterations * batchesPerIteration];
+        long totalNanos = 0;
+        long allocatedBytes = 0;
+        long allocationOperations = 0;
+        int n = 0;
+
+        for (int fork = 0; fork < forks; fork++) {
+            // There is no way to fork a fresh VM inside an instrumentation test, so start
+            // each fork from a collected heap instead:
+            System.gc();
+            System.runFinalization();
+
+            for (int i = 0; i < warmupIterations; i++) {
+                operation.setUpIteration();
+                for (int op = 0; op < operationsPerIteration; op++)
+                    operation.run();
+            }
+
+            for (int i = 0; i < measurementIterations; i++) {
+                operation.setUpIteration();
+                for (int op = 0; op < operationsPerIteration; op += batch) {
+                    int count = Math.min(batch, operationsPerIteration - op);
+                    long start = System.nanoTime();
+                    for (int j = 0; j < count; j++)
+                        operation.run();
+                    long elapsed = System.nanoTime() - start;
+                    totalNanos += elapsed;
+                    samples[n++] = elapsed / count;
+                }
+            }
+
+            operation.setUpIteration();
+            long allocated = startAllocCounting();
+            for (int op = 0; op < operationsPerIteration; op++)
+                operation.run();
+            allocated = stopAllocCounting(allocated);
+            allocatedBytes = (allocated < 0 || allocatedBytes < 0) ? -1 : allocatedBytes + allocated;
+            allocationOperations += operationsPerIteration;
+        }
+        long operations = (long) forks * measurementIterations * operationsPerIteration;
+        return new Result(name, batch, samples, operations, totalNanos, allocatedBytes,
+                allocationOperations);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long startAllocCounting() {
+        try {
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            return 0;
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long stopAllocCounting(long started) {
+        if (started < 0)
+            return -1;
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocSize();
+    }
+}
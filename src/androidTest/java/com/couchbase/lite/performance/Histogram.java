@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.performance;
+
+import java.util.Locale;
+
+/**
+ * HDR-style latency histogram with a fixed memory footprint.
+ *
+ * Values are bucketed by power of two and each power of two is split into SUB_BUCKETS linear
+ * sub-buckets, so any recorded value is reported with a relative error below 1/SUB_BUCKETS.
+ * Recording never allocates.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 - SUB_BUCKET_BITS + 1;
+
+    private final String name;
+    private final long[] counts = new long[BUCKETS * SUB_BUCKETS];
+    private long totalCount;
+    private long totalValue;
+    private long minValue = Long.MAX_VALUE;
+    private long maxValue;
+
+    public Histogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[indexFor(value)]++;
+        totalCount++;
+        totalValue += value;
+        minValue = Math.min(minValue, value);
+        maxValue = Math.max(maxValue, value);
+    }
+
+    public synchronized long getCount() {
+        return totalCount;
+    }
+
+    public synchronized long getTotal() {
+        return totalValue;
+    }
+
+    public synchronized long getMin() {
+        return totalCount == 0 ? 0 : minValue;
+    }
+
+    public synchronized long getMax() {
+        return maxValue;
+    }
+
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (totalCount == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target)
+                return Math.min(highestValueAt(i), maxValue);
+        }
+        return maxValue;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = 0;
+        totalCount = 0;
+        totalValue = 0;
+        minValue = Long.MAX_VALUE;
+        maxValue = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH,
+                "%s: count=%d total=%.3fms p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms",
+                name, getCount(), getTotal() / 1e6, getValueAtPercentile(50) / 1e6,
+                getValueAtPercentile(95) / 1e6, getValueAtPercentile(99) / 1e6, getMax() / 1e6);
+    }
+
+    private static int indexFor(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int bucket = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> (bucket - 1)) & (SUB_BUCKETS - 1);
+        return bucket * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueAt(int index) {
+        int bucket = index / SUB_BUCKETS;
+        long subBucket = index % SUB_BUCKETS;
+        if (bucket == 0)
+            return subBucket;
+        long lowest = (SUB_BUCKETS + subBucket) << (bucket - 1);
+        return lowest + (1L << (bucket - 1)) - 1;
+    }
+}
@@ -33,6 +33,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -45,6 +47,8 @@ public class PerformanceTestCase extends LiteTestCase {
     protected static final String DEFAULT_TEST_DB = "perftestdb";
     protected static final String DEFAULT_TEST_DIR_NAME = "perftest";
 
+    private final Map<String, Histogram> phases = new LinkedHashMap<String, Histogram>();
+
     @Override
     protected void setUp() throws Exception {
         // Load performance test properties:
@@ -90,6 +94,7 @@ public class PerformanceTestCase extends LiteTestCase {
 
     @Override
     protected void tearDown() throws Exception {
+        logPhaseStats();
         super.tearDown();
         closeDatabase();
         closeManager();
@@ -216,4 +221,38 @@ public class PerformanceTestCase extends LiteTestCase {
         Log.v((tag != null ? tag : TAG), "PerformanceStats: " + time + " msec" +
                 (comment != null ? " (" + comment + ")" : ""));
     }
+
+    /**
+     * Returns the start timestamp for a phase; pass it to {@link #endPhase(String, long)}.
+     */
+    protected static long startPhase() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since start into the histogram of the named phase.
+     */
+    protected void endPhase(String phase, long start) {
+        getPhase(phase).record(System.nanoTime() - start);
+    }
+
+    protected Histogram getPhase(String phase) {
+        synchronized (phases) {
+            Histogram histogram = phases.get(phase);
+            if (histogram == null) {
+                histogram = new Histogram(phase);
+                phases.put(phase, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    protected void logPhaseStats() {
+        String tag = getTestTag();
+        synchronized (phases) {
+            for (Histogram histogram : phases.values())
+                Log.v((tag != null ? tag : TAG), "PhaseStats: " + histogram);
+            phases.clear();
+        }
+    }
 }
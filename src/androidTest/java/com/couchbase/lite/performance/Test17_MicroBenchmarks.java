@@ -0,0 +1,441 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.performance;
+
+import com.couchbase.lite.BlobKey;
+import com.couchbase.lite.BlobStoreWriter;
+import com.couchbase.lite.Document;
+import com.couchbase.lite.Emitter;
+import com.couchbase.lite.Manager;
+import com.couchbase.lite.Mapper;
+import com.couchbase.lite.TransactionalTask;
+import com.couchbase.lite.View;
+import com.couchbase.lite.support.BatchProcessor;
+import com.couchbase.lite.support.Batcher;
+import com.couchbase.lite.support.MultipartReader;
+import com.couchbase.lite.support.MultipartReaderDelegate;
+import com.couchbase.lite.support.RevisionUtils;
+import com.couchbase.lite.support.SequenceMap;
+import com.couchbase.lite.support.Version;
+import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.Utils;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Microbenchmarks of the hot code paths underneath the end-to-end performance tests.
+ * Results are logged and saved as JSON so that they can be diffed across releases.
+ */
+public class Test17_MicroBenchmarks extends PerformanceTestCase {
+    public static final String TAG = "MicroBenchmarks";
+
+    private static final String RESULTS_DIR_NAME = "benchmarks";
+
+    private List<Benchmark.Result> results;
+
+    @Override
+    protected String getTestTag() {
+        return TAG;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        results = new ArrayList<Benchmark.Result>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (performanceTestsEnabled() && results.size() > 0)
+            saveResults();
+        super.tearDown();
+    }
+
+    public void testCanonicalJSON() throws Exception {
+        if (!performanceTestsEnabled())
+            return;
+
+        final Map<String, Object> props = createProperties();
+        measure(createBenchmark("RevisionUtils.asCanonicalJSON"), new Benchmark.Operation() {
+            @Override
+            public void run() throws Exception {
+                assertNotNull(RevisionUtils.asCanonicalJSON(props));
+            }
+        });
+    }
+
+    public void testGenerateRevID() throws Exception {
+        if (!performanceTestsEnabled())
+            return;
+
+        final byte[] json = RevisionUtils.asCanonicalJSON(createProperties());
+        measure(createBenchmark("RevisionUtils.generateRevID"), new Benchmark.Operation() {
+            @Override
+            public void run() throws Exception {
+                assertNotNull(RevisionUtils.generateRevID(json, false, "1-abcdef"));
+            }
+        });
+    }
+
+    public void testSequenceMap() throws Exception {
+        if (!performanceTestsEnabled())
+            return;
+
+        final SequenceMap map = new SequenceMap();
+        measure(createBenchmark("SequenceMap.addValue+removeSequence"), new Benchmark.Operation() {
+            @Override
+            public void run() throws Exception {
+                // Keep a small out-of-order window open, as the puller does:
+                long seq = map.addValue("doc");
+                if (seq > 4)
+                    map.removeSequence(seq - 4);
+                map.getCheckpointedSequence();
+            }
+        });
+    }
+
+    /**
+     * Same as testSequenceMap but with a wide window of sequences completing in random order,
+     * as when a pull downloads many revisions concurrently.
+     */
+    public void testSequenceMapOutOfOrder() throws Exception {
+        if (!performanceTestsEnabled())
+            return;
+
+        final int window = getSequenceWindow();
+        final SequenceMap map = new SequenceMap();
+        measure(createBenchmark("SequenceMap.addValue+removeSequence(window=" + window + ")"),
+                new Benchmark.Operation() {
+                    private final long[] inFlight = new long[window];
+                    private final Random random = new Random(42);
+                    private int filled = 0;
+
+                    @Override
+                    public void run() throws Exception {
+                        long seq = map.addValue("doc");
+                        if (filled < window) {
+                            inFlight[filled++] = seq;
+                        } else {
+                            int i = random.nextInt(window);
+                            map.removeSequence(inFlight[i]);
+                            inFlight[i] = seq;
+                        }
+                        map.getCheckpointedSequence();
+                    }
+                });
+    }
+
+    public void testBatcherQueueObject() throws Exception {
+        if (!performanceTestsEnabled())
+            return;
+
+        ScheduledExecutorService workExecutor = new ScheduledThreadPoolExecutor(1);
+        try {
+            final Batcher<String> batcher = new Batcher<String>(workExecutor, 100, 0,
+                    new BatchProcessor<String>() {
+                        @Override
+                        public void process(List<String> itemsToProcess) {
+                        }
+                    });
+            measure(createBenchmark("Batcher.queueObject"), new Benchmark.Operation() {
+                @Override
+                public void run() throws Exception {
+                    batcher.queueObject("item");
+                }
+            });
+            batcher.waitForPendingFutures();
+        } finally {
+            Utils.shutdownAndAwaitTermination(workExecutor);
+        }
+    }
+
+    /**
+     * Measures queueObject latency while other threads queue into the same Batcher, as the
+     * change tracker, local writes and network callbacks do with the pusher's batcher.
+     */
+    public void testBatcherQueueObjectContended() throws Exception {
+        if (!performanceTestsEnabled())
+            return;
+
+        ScheduledExecutorService workExecutor = new ScheduledThreadPoolExecutor(1);
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        List<Thread> producers = new ArrayList<Thread>();
+        try {
+            final Batcher<String> batcher = new Batcher<String>(workExecutor, 100, 0,
+                    new BatchProcessor<String>() {
+                        @Override
+                        public void process(List<String> itemsToProcess) {
+                        }
+                    });
+            for (int i = 0; i < getNumberOfProducerThreads(); i++) {
+                Thread producer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        while (!stopped.get()) {
+                            // Don't let the inbox grow without bound if the drainer falls behind:
+                            if (batcher.count() > 10000)
+                                Thread.yield();
+                            else
+                                batcher.queueObject("item");
+                        }
+                    }
+                });
+                producers.add(producer);
+                producer.start();
+            }
+            measure(createBenchmark("Batcher.queueObject(" + getNumberOfProducerThreads() +
+                    " producers)"), new Benchmark.Operation() {
+                @Override
+                public void run() throws Exception {
+                    batcher.queueObject("item");
+                }
+            });
+            stopped.set(true);
+            for (Thread producer : producers)
+                producer.join();
+            batcher.waitForPendingFutures();
+        } finally {
+            stopped.set(true);
+            Utils.shutdownAndAwaitTermination(workExecutor);
+        }
+    }
+
+    public void testMultipartReader() throws Exception {
+        if (!performanceTestsEnabled())
+            return;
+
+        final byte[] mime = createMultipartBody();
+        final int chunkSize = 8192;
+        Benchmark benchmark = createBenchmark("MultipartReader.appendData");
+        benchmark.setBatchSize(1);
+        measure(benchmark, new Benchmark.Operation() {
+            @Override
+            public void run() throws Exception {
+                MultipartReader reader = new MultipartReader(
+                        "multipart/related; boundary=\"BOUNDARY\"", new NullMultipartReaderDelegate());
+                for (int offset = 0; offset < mime.length && !reader.finished(); offset += chunkSize)
+                    reader.appendData(Arrays.copyOfRange(mime, offset,
+                            Math.min(offset + chunkSize, mime.length)));
+                assertTrue(reader.finished());
+            }
+        });
+    }
+
+    public void testBlobStoreWriter() throws Exception {
+        if (!performanceTestsEnabled())
+            return;
+
+        final byte[] data = new byte[getSizeOfAttachment()];
+        Arrays.fill(data, (byte) 'a');
+        Benchmark benchmark = createBenchmark("BlobStoreWriter.appendData+install");
+        benchmark.setOperationsPerIteration(getBlobOperationsPerIteration());
+        benchmark.setBatchSize(1);
+        measure(benchmark, new Benchmark.Operation() {
+            private int counter = 0;
+
+            @Override
+            public void setUpIteration() throws Exception {
+                // Delete the previous iteration's blobs so the store stays small:
+                database.getAttachmentStore().deleteBlobsExceptWithKeys(new ArrayList<BlobKey>());
+            }
+
+            @Override
+            public void run() throws Exception {
+                // Vary the content so every install writes a new blob:
+                int value = counter++;
+                for (int i = 0; i < 4; i++)
+                    data[i] = (byte) (value >>> (i * 8));
+                BlobStoreWriter writer = new BlobStoreWriter(database.getAttachmentStore());
+                writer.appendData(data);
+                writer.finish();
+                assertTrue(writer.install());
+            }
+        });
+    }
+
+    public void testViewUpdateIndex() throws Exception {
+        if (!performanceTestsEnabled())
+            return;
+
+        final View view = database.getView("benchmark");
+        view.setMap(new Mapper() {
+            @Override
+            public void map(Map<String, Object> document, Emitter emitter) {
+                emitter.emit(document.get("name"), document.get("apt"));
+            }
+        }, "1");
+
+        Benchmark benchmark = createBenchmark("View.updateIndex");
+        benchmark.setOperationsPerIteration(1);
+        benchmark.setBatchSize(1);
+        measure(benchmark, new Benchmark.Operation() {
+            private int counter = 0;
+
+            @Override
+            public void setUpIteration() throws Exception {
+                boolean success = database.runInTransaction(new TransactionalTask() {
+                    public boolean run() {
+                        for (int i = 0; i < getNumberOfDocumentsPerIndexUpdate(); i++) {
+                            Map<String, Object> props = new HashMap<String, Object>();
+                            props.put("name", "n" + counter);
+                            props.put("apt", counter++);
+                            Document doc = database.createDocument();
+                            try {
+                                doc.putProperties(props);
+                            } catch (Exception e) {
+                                Log.e(TAG, "Error when creating a document", e);
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                });
+                assertTrue(success);
+            }
+
+            @Override
+            public void run() throws Exception {
+                view.updateIndex();
+            }
+        });
+    }
+
+    private Benchmark createBenchmark(String name) {
+        Benchmark benchmark = new Benchmark(name);
+        benchmark.setForks(getForks());
+        benchmark.setWarmupIterations(getWarmupIterations());
+        benchmark.setMeasurementIterations(getMeasurementIterations());
+        benchmark.setOperationsPerIteration(getOperationsPerIteration());
+        benchmark.setBatchSize(getBatchSize());
+        return benchmark;
+    }
+
+    private void measure(Benchmark benchmark, Benchmark.Operation operation) throws Exception {
+        Benchmark.Result result = benchmark.run(operation);
+        results.add(result);
+        Log.v(TAG, "PerformanceStats: %s", result);
+    }
+
+    private void saveResults() throws Exception {
+        File dir = getTestContext(RESULTS_DIR_NAME, false).getFilesDir();
+        File file = new File(dir, getName() + ".json");
+
+        List<Map<String, Object>> benchmarks = new ArrayList<Map<String, Object>>();
+        for (Benchmark.Result result : results)
+            benchmarks.add(result.asMap());
+
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put("version", Version.getVersionName());
+        report.put("commit", Version.getCommitHash());
+        report.put("storageType", getStorageType());
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("benchmarks", benchmarks);
+        Manager.getObjectMapper().writerWithDefaultPrettyPrinter().writeValue(file, report);
+        Log.v(TAG, "Benchmark results saved to %s", file.getAbsolutePath());
+    }
+
+    private Map<String, Object> createProperties() {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put("_id", "benchmark-doc");
+        props.put("name", "benchmark");
+        props.put("apt", 42);
+        props.put("phone", 408100000);
+        props.put("vacant", true);
+        props.put("tags", Arrays.asList("one", "two", "three"));
+        Map<String, Object> nested = new HashMap<String, Object>();
+        nested.put("street", "1 Main St");
+        nested.put("zip", "94000");
+        props.put("address", nested);
+        return props;
+    }
+
+    private byte[] createMultipartBody() {
+        StringBuilder part = new StringBuilder();
+        while (part.length() < getSizeOfAttachment())
+            part.append("large_part_data");
+        String mime = "--BOUNDARY\r\nContent-Type: application/json\r\n\r\n{\"_id\":\"doc\"}" +
+                "\r\n--BOUNDARY\r\nContent-Type: application/octet-stream\r\n\r\n" + part +
+                "\r\n--BOUNDARY--";
+        return mime.getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static class NullMultipartReaderDelegate implements MultipartReaderDelegate {
+        @Override
+        public void startedPart(Map<String, String> headers) {
+        }
+
+        @Override
+        public void appendToPart(byte[] data) {
+        }
+
+        @Override
+        public void appendToPart(byte[] data, int off, int len) {
+        }
+
+        @Override
+        public void finishedPart() {
+        }
+    }
+
+    private int getForks() {
+        return Integer.parseInt(System.getProperty("test17.forks"));
+    }
+
+    private int getWarmupIterations() {
+        return Integer.parseInt(System.getProperty("test17.warmupIterations"));
+    }
+
+    private int getMeasurementIterations() {
+        return Integer.parseInt(System.getProperty("test17.measurementIterations"));
+    }
+
+    private int getOperationsPerIteration() {
+        return Integer.parseInt(System.getProperty("test17.operationsPerIteration"));
+    }
+
+    private int getBatchSize() {
+        return Integer.parseInt(System.getProperty("test17.batchSize"));
+    }
+
+    private int getBlobOperationsPerIteration() {
+        return Integer.parseInt(System.getProperty("test17.blobOperationsPerIteration"));
+    }
+
+    private int getSizeOfAttachment() {
+        return Integer.parseInt(System.getProperty("test17.sizeOfAttachment"));
+    }
+
+    private int getNumberOfProducerThreads() {
+        return Integer.parseInt(System.getProperty("test17.numberOfProducerThreads"));
+    }
+
+    private int getSequenceWindow() {
+        return Integer.parseInt(System.getProperty("test17.sequenceWindow"));
+    }
+
+    private int getNumberOfDocumentsPerIndexUpdate() {
+        return Integer.parseInt(System.getProperty("test17.numberOfDocumentsPerIndexUpdate"));
+    }
+}
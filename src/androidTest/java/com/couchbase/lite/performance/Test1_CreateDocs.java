@@ -42,6 +42,7 @@ public class Test1_CreateDocs extends PerformanceTestCase {
         Arrays.fill(chars, 'a');
         final String content = new String(chars);
 
+        final long[] commitStart = new long[1];
         long start = System.currentTimeMillis();
         boolean success = database.runInTransaction(new TransactionalTask() {
             public boolean run() {
@@ -49,16 +50,24 @@ public class Test1_CreateDocs extends PerformanceTestCase {
                     try {
                         Map<String, Object> props = new HashMap<String, Object>();
                         props.put("content", content);
+                        long phase = startPhase();
                         Document doc = database.createDocument();
+                        endPhase("createDocument", phase);
+                        phase = startPhase();
                         doc.putProperties(props);
+                        endPhase("putProperties", phase);
                     } catch (CouchbaseLiteException e) {
                         Log.e(TAG, "Error when creating a document", e);
                         return false;
                     }
                 }
+                commitStart[0] = startPhase();
                 return true;
             }
         });
+        // commitStart is only set once the whole transaction body has succeeded:
+        if (success)
+            endPhase("commit", commitStart[0]);
         assertTrue(success);
 
         long end = System.currentTimeMillis();
@@ -79,9 +79,13 @@ public class Test3_ReadDocs extends PerformanceTestCase {
 
         long start = System.currentTimeMillis();
         for(String docId : docIds) {
+            long phase = startPhase();
             Document doc = database.getDocument(docId);
+            endPhase("getDocument", phase);
             assertNotNull(doc);
+            phase = startPhase();
             Map<String,Object> properties = doc.getProperties();
+            endPhase("getProperties", phase);
             assertNotNull(properties);
             assertNotNull(properties.get("content"));
         }
@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.util;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.couchbase.lite.LiteTestCase;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+public class ICUUtilsTest extends LiteTestCase {
+    public void testLoadICUData() throws Exception {
+        String path = ICUUtils.loadICUDataAsync(getContext()).get(30, TimeUnit.SECONDS);
+        assertNotNull(path);
+        assertEquals(path, ICUUtils.getICUDatabasePath(getContext()));
+
+        File icuDataFile = new File(path, "icu/icudt53l.dat");
+        assertTrue(icuDataFile.exists());
+        assertTrue(icuDataFile.length() > 0);
+        assertFalse(new File(path, "icu/icudt53l.dat.tmp").exists());
+    }
+
+    public void testLoadICUDataPerFilesDir() throws Exception {
+        boolean systemICU = new File("/system/usr/icu/icudt53l.dat").exists();
+        final File filesDir = new File(getContext().getCacheDir(), "icu-files-dir");
+        Context context = new ContextWrapper(getContext()) {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+        };
+        try {
+            String path = ICUUtils.loadICUDataAsync(context).get(30, TimeUnit.SECONDS);
+            assertNotNull(path);
+            // Unless the system provides the data, each files dir gets its own copy:
+            if (systemICU) {
+                assertEquals("/system/usr", path);
+            } else {
+                assertEquals(filesDir.getAbsolutePath(), path);
+                assertTrue(new File(path, "icu/icudt53l.dat").exists());
+            }
+            assertEquals(path, ICUUtils.getICUDatabasePath(context));
+
+            if (!systemICU) {
+                // A deleted data file is extracted again instead of reusing the cached task:
+                FileDirUtils.deleteRecursive(filesDir);
+                path = ICUUtils.loadICUDataAsync(context).get(30, TimeUnit.SECONDS);
+                assertEquals(filesDir.getAbsolutePath(), path);
+                assertTrue(new File(path, "icu/icudt53l.dat").exists());
+            }
+        } finally {
+            FileDirUtils.deleteRecursive(filesDir);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Row-level difference between two results of the same query, suitable for driving
+ * RecyclerView adapter notifications instead of reloading the whole list.
+ *
+ * Rows are matched by document ID and emitted key (by key alone for reduced/grouped rows).
+ * A matched row whose sequence or value differs is reported as changed. Moves are the minimal
+ * set of matched rows whose relative order differs, computed from the longest increasing
+ * subsequence of old positions.
+ *
+ * Positions in getRemoved() and getMoved() sources refer to the old result, all others to the
+ * new result, so they describe the difference but can't be applied one by one. To update a list
+ * or an adapter incrementally, use {@link #dispatchUpdatesTo(Callback)}, which reports each
+ * update at its position in the list as it is after the preceding updates.
+ * {@link #isSameRow(QueryRow, QueryRow)} and {@link #hasSameContents(QueryRow, QueryRow)} can
+ * also be used directly from a DiffUtil.Callback.
+ */
+public class LiveQueryDiff {
+    /**
+     * LiveQuery.ChangeListener that remembers the previous result and reports the difference.
+     */
+    public static abstract class ChangeListener implements LiveQuery.ChangeListener {
+        private QueryEnumerator previousRows;
+
+        @Override
+        public void changed(LiveQuery.ChangeEvent event) {
+            if (event.getError() != null || event.getRows() == null)
+                return;
+            QueryEnumerator rows = event.getRows();
+            LiveQueryDiff diff;
+            synchronized (this) {
+                diff = compute(previousRows, rows);
+                previousRows = rows;
+            }
+            if (!diff.isEmpty())
+                rowsChanged(rows, diff);
+        }
+
+        public abstract void rowsChanged(QueryEnumerator rows, LiveQueryDiff diff);
+    }
+
+    /**
+     * Receives the updates that turn the old result into the new one, e.g. to call the matching
+     * RecyclerView.Adapter notifyItem*() methods.
+     */
+    public interface Callback {
+        void onRemoved(int position);
+
+        void onInserted(int position);
+
+        /**
+         * The row at fromPosition is removed and then inserted at toPosition.
+         */
+        void onMoved(int fromPosition, int toPosition);
+
+        void onChanged(int position);
+    }
+
+    public static class Move {
+        private final int fromPosition;
+        private final int toPosition;
+
+        Move(int fromPosition, int toPosition) {
+            this.fromPosition = fromPosition;
+            this.toPosition = toPosition;
+        }
+
+        public int getFromPosition() {
+            return fromPosition;
+        }
+
+        public int getToPosition() {
+            return toPosition;
+        }
+
+        @Override
+        public String toString() {
+            return fromPosition + "->" + toPosition;
+        }
+    }
+
+    private final List<Integer> removed = new ArrayList<Integer>();
+    private final List<Integer> inserted = new ArrayList<Integer>();
+    private final List<Integer> changed = new ArrayList<Integer>();
+    private final List<Move> moved = new ArrayList<Move>();
+    private final int oldCount;
+    private final int[] newToOld;
+    private boolean[] stable;
+
+    private LiveQueryDiff(int oldCount, int newCount) {
+        this.oldCount = oldCount;
+        this.newToOld = new int[newCount];
+    }
+
+    /**
+     * Old positions of removed rows, in descending order so they can be removed one by one.
+     */
+    public List<Integer> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * New positions of inserted rows, in ascending order.
+     */
+    public List<Integer> getInserted() {
+        return inserted;
+    }
+
+    /**
+     * New positions of rows that are still present but whose contents changed.
+     */
+    public List<Integer> getChanged() {
+        return changed;
+    }
+
+    public List<Move> getMoved() {
+        return moved;
+    }
+
+    public boolean isEmpty() {
+        return removed.isEmpty() && inserted.isEmpty() && changed.isEmpty() && moved.isEmpty();
+    }
+
+    /**
+     * Reports the difference as a sequence of single-row updates to the Callback. Each position
+     * is valid in the list as it is after all the preceding updates: removals come first, in
+     * descending order, then insertions and moves in ascending order of their new positions,
+     * then changes at their new positions.
+     */
+    public void dispatchUpdatesTo(Callback callback) {
+        // Old positions of the rows currently in the list; inserted rows are marked as -1:
+        List<Integer> current = new ArrayList<Integer>(oldCount + inserted.size());
+        for (int i = 0; i < oldCount; i++)
+            current.add(i);
+        for (int position : removed) {
+            callback.onRemoved(position);
+            current.remove(position);
+        }
+
+        // Place each inserted or moved row right after the row that precedes it in the new
+        // result. Stable rows keep their relative order, so once every other row is placed the
+        // list matches the new result:
+        int previous = -1;
+        for (int i = 0; i < newToOld.length; i++) {
+            int oldPosition = newToOld[i];
+            if (oldPosition < 0) {
+                previous++;
+                callback.onInserted(previous);
+                current.add(previous, -1);
+            } else if (!stable[i]) {
+                int from = current.indexOf(oldPosition);
+                int to = from > previous ? previous + 1 : previous;
+                callback.onMoved(from, to);
+                current.remove(from);
+                current.add(to, oldPosition);
+                previous = to;
+            } else {
+                do {
+                    previous++;
+                } while (current.get(previous) != oldPosition);
+            }
+        }
+
+        for (int position : changed)
+            callback.onChanged(position);
+    }
+
+    @Override
+    public String toString() {
+        return "LiveQueryDiff[removed=" + removed + ", inserted=" + inserted +
+                ", changed=" + changed + ", moved=" + moved + "]";
+    }
+
+    public static boolean isSameRow(QueryRow oldRow, QueryRow newRow) {
+        return equal(oldRow.getDocumentId(), newRow.getDocumentId()) &&
+                equal(oldRow.getKey(), newRow.getKey());
+    }
+
+    public static boolean hasSameContents(QueryRow oldRow, QueryRow newRow) {
+        return oldRow.getSequenceNumber() == newRow.getSequenceNumber() &&
+                equal(oldRow.getValue(), newRow.getValue());
+    }
+
+    /**
+     * Computes the difference between two query results. A null oldRows is treated as empty.
+     */
+    public static LiveQueryDiff compute(QueryEnumerator oldRows, QueryEnumerator newRows) {
+        int oldCount = oldRows != null ? oldRows.getCount() : 0;
+        int newCount = newRows != null ? newRows.getCount() : 0;
+        LiveQueryDiff diff = new LiveQueryDiff(oldCount, newCount);
+
+        // Index old rows by identity; duplicates (same doc emitting the same key twice) are
+        // matched in order:
+        Map<RowIdentity, List<Integer>> oldPositions = new HashMap<RowIdentity, List<Integer>>();
+        for (int i = 0; i < oldCount; i++) {
+            RowIdentity id = new RowIdentity(oldRows.getRow(i));
+            List<Integer> positions = oldPositions.get(id);
+            if (positions == null) {
+                positions = new ArrayList<Integer>(1);
+                oldPositions.put(id, positions);
+            }
+            positions.add(i);
+        }
+
+        boolean[] oldMatched = new boolean[oldCount];
+        int[] newToOld = diff.newToOld;
+        for (int i = 0; i < newCount; i++) {
+            QueryRow row = newRows.getRow(i);
+            List<Integer> positions = oldPositions.get(new RowIdentity(row));
+            if (positions == null || positions.isEmpty()) {
+                newToOld[i] = -1;
+                diff.inserted.add(i);
+                continue;
+            }
+            int oldPosition = positions.remove(0);
+            newToOld[i] = oldPosition;
+            oldMatched[oldPosition] = true;
+            if (!hasSameContents(oldRows.getRow(oldPosition), row))
+                diff.changed.add(i);
+        }
+
+        for (int i = oldCount - 1; i >= 0; i--) {
+            if (!oldMatched[i])
+                diff.removed.add(i);
+        }
+
+        // Matched rows that are not part of the longest increasing run of old positions are
+        // the ones that moved:
+        boolean[] stable = longestIncreasingSubsequence(newToOld);
+        diff.stable = stable;
+        for (int i = 0; i < newCount; i++) {
+            if (newToOld[i] >= 0 && !stable[i])
+                diff.moved.add(new Move(newToOld[i], i));
+        }
+        return diff;
+    }
+
+    /**
+     * Marks the entries of a longest strictly increasing subsequence of the non-negative values.
+     */
+    private static boolean[] longestIncreasingSubsequence(int[] values) {
+        int n = values.length;
+        int[] tailIndexes = new int[n];
+        int[] previous = new int[n];
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            if (values[i] < 0)
+                continue;
+            int lo = 0, hi = length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[tailIndexes[mid]] < values[i])
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            previous[i] = lo > 0 ? tailIndexes[lo - 1] : -1;
+            tailIndexes[lo] = i;
+            if (lo == length)
+                length++;
+        }
+
+        boolean[] result = new boolean[n];
+        for (int i = length > 0 ? tailIndexes[length - 1] : -1; i >= 0; i = previous[i])
+            result[i] = true;
+        return result;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static class RowIdentity {
+        private final String docID;
+        private final Object key;
+
+        RowIdentity(QueryRow row) {
+            this.docID = row.getDocumentId();
+            this.key = row.getKey();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RowIdentity))
+                return false;
+            RowIdentity other = (RowIdentity) o;
+            return equal(docID, other.docID) && equal(key, other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (docID != null ? docID.hashCode() : 0) + (key != null ? key.hashCode() : 0);
+        }
+    }
+}
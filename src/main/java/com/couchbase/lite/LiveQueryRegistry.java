@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.Utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one live query among all observers of equivalent queries, and rate-limits how often
+ * it re-runs.
+ *
+ * Several screens that observe the same view with the same options each used to run their own
+ * LiveQuery, and every one of them re-ran after every database change. With a registry, the
+ * first listener of a query starts a shared query and later listeners of an equivalent query
+ * (same database, view and query options) join it, so N observers cost one query execution.
+ * After a database change the shared query re-runs at most once per minUpdateInterval; changes
+ * that arrive in the meantime, e.g. a burst of replication commits, are covered by that run.
+ *
+ * The shared query runs the Query instance it was started with, so a Query must not be
+ * modified after it is registered. Results are delivered on the registry's thread, and only
+ * when they differ from the previous run.
+ */
+public class LiveQueryRegistry {
+    public static final String TAG = Log.TAG_QUERY;
+
+    public interface ChangeListener {
+        void changed(Query query, QueryEnumerator rows);
+    }
+
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CBLLiveQueryRegistry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final Map<List<Object>, SharedQuery> sharedQueries =
+            new HashMap<List<Object>, SharedQuery>();
+    private final AtomicLong executionCount = new AtomicLong();
+
+    /**
+     * Adds a listener for the results of the query, re-running them at most once per
+     * minUpdateInterval milliseconds. If an equivalent query is already shared, the listener
+     * joins it and immediately gets its latest results; the shared query then uses the smallest
+     * interval any of its listeners asked for.
+     */
+    public synchronized void addChangeListener(Query query, long minUpdateInterval,
+                                               ChangeListener listener) {
+        if (query == null || listener == null)
+            throw new IllegalArgumentException("query and listener must not be null");
+        if (executor.isShutdown())
+            throw new IllegalStateException("LiveQueryRegistry is closed");
+        List<Object> key = keyFor(query);
+        SharedQuery shared = sharedQueries.get(key);
+        if (shared == null) {
+            shared = new SharedQuery(query, minUpdateInterval);
+            sharedQueries.put(key, shared);
+            shared.addListener(listener, minUpdateInterval);
+            shared.start();
+        } else {
+            shared.addListener(listener, minUpdateInterval);
+        }
+    }
+
+    /**
+     * Removes a listener; the shared query stops once its last listener is removed.
+     */
+    public synchronized void removeChangeListener(Query query, ChangeListener listener) {
+        List<Object> key = keyFor(query);
+        SharedQuery shared = sharedQueries.get(key);
+        if (shared == null)
+            return;
+        if (shared.removeListener(listener)) {
+            shared.stop();
+            sharedQueries.remove(key);
+        }
+    }
+
+    /**
+     * Stops all shared queries and the registry's thread.
+     */
+    public void close() {
+        synchronized (this) {
+            for (SharedQuery shared : sharedQueries.values())
+                shared.stop();
+            sharedQueries.clear();
+        }
+        Utils.shutdownAndAwaitTermination(executor);
+    }
+
+    /**
+     * Number of distinct queries currently shared.
+     */
+    public synchronized int getSharedQueryCount() {
+        return sharedQueries.size();
+    }
+
+    /**
+     * Number of times a shared query has been run.
+     */
+    public long getExecutionCount() {
+        return executionCount.get();
+    }
+
+    /**
+     * Everything that determines a query's results. Database and view are compared by
+     * identity, as is the post-filter.
+     */
+    private static List<Object> keyFor(Query query) {
+        return Arrays.asList(query.getDatabase(), query.getView(),
+                query.getStartKey(), query.getEndKey(),
+                query.getStartKeyDocId(), query.getEndKeyDocId(),
+                query.isInclusiveStart(), query.isInclusiveEnd(),
+                query.getLimit(), query.getSkip(), query.isDescending(),
+                query.getGroupLevel(), query.getKeys(), query.isMapOnly(),
+                query.getAllDocsMode(), query.getIndexUpdateMode(),
+                query.shouldPrefetch(), query.shouldIncludeDeleted(),
+                query.getPrefixMatchLevel(), query.getPostFilter());
+    }
+
+    private class SharedQuery implements Database.ChangeListener {
+        private final Query query;
+        private final CopyOnWriteArrayList<ChangeListener> listeners =
+                new CopyOnWriteArrayList<ChangeListener>();
+        private final Map<ChangeListener, Long> intervals = new HashMap<ChangeListener, Long>();
+
+        private final Object lock = new Object();
+        private long minUpdateInterval;
+        private boolean stopped;
+        private boolean dirty = true;
+        private boolean scheduled;
+        private boolean running;
+        private long lastRunTime;
+        private QueryEnumerator rows;
+
+        SharedQuery(Query query, long minUpdateInterval) {
+            this.query = query;
+            this.minUpdateInterval = minUpdateInterval;
+        }
+
+        void start() {
+            query.getDatabase().addChangeListener(this);
+            synchronized (lock) {
+                scheduleLocked();
+            }
+        }
+
+        void stop() {
+            query.getDatabase().removeChangeListener(this);
+            synchronized (lock) {
+                stopped = true;
+            }
+        }
+
+        void addListener(final ChangeListener listener, long interval) {
+            if (!listeners.addIfAbsent(listener))
+                return;
+            final QueryEnumerator current;
+            synchronized (lock) {
+                intervals.put(listener, interval);
+                minUpdateInterval = Math.min(minUpdateInterval, interval);
+                current = rows;
+            }
+            if (current != null) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (listeners.contains(listener))
+                            listener.changed(query, current);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Returns true if no listeners are left.
+         */
+        boolean removeListener(ChangeListener listener) {
+            listeners.remove(listener);
+            synchronized (lock) {
+                intervals.remove(listener);
+                if (intervals.isEmpty())
+                    return true;
+                long interval = Long.MAX_VALUE;
+                for (long i : intervals.values())
+                    interval = Math.min(interval, i);
+                minUpdateInterval = interval;
+                return false;
+            }
+        }
+
+        @Override
+        public void changed(Database.ChangeEvent event) {
+            synchronized (lock) {
+                dirty = true;
+                scheduleLocked();
+            }
+        }
+
+        private void scheduleLocked() {
+            if (stopped || scheduled || running || !dirty)
+                return;
+            scheduled = true;
+            long delay = Math.max(0, lastRunTime + minUpdateInterval - System.currentTimeMillis());
+            try {
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        update();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                scheduled = false;
+            }
+        }
+
+        private void update() {
+            synchronized (lock) {
+                scheduled = false;
+                if (stopped || !dirty)
+                    return;
+                dirty = false;
+                running = true;
+            }
+
+            try {
+                QueryEnumerator newRows = query.run();
+                executionCount.incrementAndGet();
+                boolean changed;
+                synchronized (lock) {
+                    changed = rows == null || !rows.equals(newRows);
+                    if (changed)
+                        rows = newRows;
+                }
+                if (changed) {
+                    for (ChangeListener listener : listeners)
+                        listener.changed(query, newRows);
+                }
+            } catch (CouchbaseLiteException e) {
+                Log.e(TAG, "%s: Unable to run shared query %s", e, LiveQueryRegistry.this, query);
+            } finally {
+                synchronized (lock) {
+                    running = false;
+                    lastRunTime = System.currentTimeMillis();
+                    scheduleLocked();
+                }
+            }
+        }
+
+        private void execute(Runnable runnable) {
+            try {
+                executor.execute(runnable);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "%s: Registry is closed", LiveQueryRegistry.this);
+            }
+        }
+    }
+}
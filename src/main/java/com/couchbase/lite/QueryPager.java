@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keyset ("continue after") pagination over a view or all-docs Query.
+ *
+ * Instead of paging with setSkip(), which makes the index walk and discard every skipped row,
+ * each page starts at the key and document ID of the last row of the previous page, so fetching
+ * any page costs an index seek plus pageSize rows.
+ *
+ * The pager takes ownership of the Query and modifies its startKey, startKeyDocId, limit, skip
+ * and inclusiveStart. The Query's original startKey, skip and inclusiveStart only apply to the
+ * first page; later pages start inclusively at the previous page's last row, without skipping.
+ * Reduced/grouped queries and queries with setKeys() can't be paged this way.
+ *
+ * A document can emit the same key more than once, so several rows can share the cursor's key
+ * and document ID. The cursor therefore also counts how many of those rows have already been
+ * returned ({@link #getLastRowCount()}), and the next page skips exactly that many.
+ */
+public class QueryPager {
+    private final Query query;
+    private final int pageSize;
+    private boolean started;
+    private boolean hasMore = true;
+    private Object lastKey;
+    private String lastDocID;
+    private int lastRowCount;
+
+    public QueryPager(Query query, int pageSize) {
+        if (pageSize <= 0)
+            throw new IllegalArgumentException("pageSize must be positive");
+        this.query = query;
+        this.pageSize = pageSize;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * Key of the last row returned so far; together with {@link #getLastDocID()} and
+     * {@link #getLastRowCount()} this is the cursor to persist in order to resume paging later
+     * via {@link #resumeAfter(Object, String, int)}.
+     */
+    public Object getLastKey() {
+        return lastKey;
+    }
+
+    public String getLastDocID() {
+        return lastDocID;
+    }
+
+    /**
+     * Number of rows returned so far that have the last key and document ID; more than 1 only
+     * if the document emitted that key more than once.
+     */
+    public int getLastRowCount() {
+        return lastRowCount;
+    }
+
+    /**
+     * Continues paging after the row with the given key and document ID, for a document that
+     * emits each key only once.
+     */
+    public void resumeAfter(Object key, String docID) {
+        resumeAfter(key, docID, 1);
+    }
+
+    /**
+     * Continues paging after the first rowCount rows with the given key and document ID.
+     */
+    public void resumeAfter(Object key, String docID, int rowCount) {
+        if (rowCount <= 0)
+            throw new IllegalArgumentException("rowCount must be positive");
+        this.started = true;
+        this.hasMore = true;
+        this.lastKey = key;
+        this.lastDocID = docID;
+        this.lastRowCount = rowCount;
+    }
+
+    /**
+     * Returns the next page of at most pageSize rows; an empty list once there are no more rows.
+     */
+    public List<QueryRow> nextPage() throws CouchbaseLiteException {
+        List<QueryRow> page = new ArrayList<QueryRow>(pageSize);
+        if (!hasMore)
+            return page;
+
+        if (started) {
+            query.setStartKey(lastKey);
+            query.setStartKeyDocId(lastDocID);
+            query.setSkip(0);
+            // An exclusive start would also skip the rows after the cursor that share its key,
+            // so start at the cursor and fetch extra rows for the ones already returned:
+            query.setInclusiveStart(true);
+            query.setLimit(pageSize + lastRowCount);
+        } else {
+            query.setLimit(pageSize);
+        }
+
+        QueryEnumerator rows = query.run();
+        int count = rows.getCount();
+        int first = 0;
+        if (started) {
+            while (first < count && first < lastRowCount &&
+                    isSameRow(rows.getRow(first), lastKey, lastDocID))
+                first++;
+        }
+        for (int i = first; i < count && page.size() < pageSize; i++)
+            page.add(rows.getRow(i));
+
+        hasMore = count == query.getLimit();
+        started = true;
+        if (page.size() > 0) {
+            QueryRow last = page.get(page.size() - 1);
+            Object key = last.getKey();
+            String docID = last.getDocumentId();
+            int rowCount = 0;
+            for (int i = page.size() - 1; i >= 0 && isSameRow(page.get(i), key, docID); i--)
+                rowCount++;
+            // If the whole page continues the previous cursor's rows, count those too:
+            if (rowCount == page.size() && isSameRow(last, lastKey, lastDocID))
+                rowCount += first;
+            lastKey = key;
+            lastDocID = docID;
+            lastRowCount = rowCount;
+        }
+        return page;
+    }
+
+    private static boolean isSameRow(QueryRow row, Object key, String docID) {
+        String rowDocID = row.getDocumentId();
+        return keysEqual(key, row.getKey()) &&
+                (docID == null ? rowDocID == null : docID.equals(rowDocID));
+    }
+
+    /**
+     * Compares keys the way the view collation does, so that e.g. a Long cursor key passed to
+     * resumeAfter() matches the Integer key of the row it came from.
+     */
+    private static boolean keysEqual(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number)
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        if (a instanceof List && b instanceof List) {
+            List<?> listA = (List<?>) a;
+            List<?> listB = (List<?>) b;
+            if (listA.size() != listB.size())
+                return false;
+            for (int i = 0; i < listA.size(); i++) {
+                if (!keysEqual(listA.get(i), listB.get(i)))
+                    return false;
+            }
+            return true;
+        }
+        if (a instanceof Map && b instanceof Map) {
+            Map<?, ?> mapA = (Map<?, ?>) a;
+            Map<?, ?> mapB = (Map<?, ?>) b;
+            if (mapA.size() != mapB.size())
+                return false;
+            for (Map.Entry<?, ?> entry : mapA.entrySet()) {
+                if (!mapB.containsKey(entry.getKey()) ||
+                        !keysEqual(entry.getValue(), mapB.get(entry.getKey())))
+                    return false;
+            }
+            return true;
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+}
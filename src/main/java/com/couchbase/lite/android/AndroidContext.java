@@ -19,6 +19,7 @@ import com.couchbase.lite.Context;
 import com.couchbase.lite.NetworkReachabilityManager;
 import com.couchbase.lite.storage.SQLiteStorageEngineFactory;
 import com.couchbase.lite.support.Version;
+import com.couchbase.lite.util.ICUUtils;
 
 import java.io.File;
 import java.util.Locale;
@@ -29,6 +30,9 @@ public class AndroidContext implements Context {
 
     public AndroidContext(android.content.Context wrappedContext) {
         this.wrappedContext = wrappedContext;
+        // Locate or extract the ICU data in the background while the app starts up; a SQLite
+        // storage engine only blocks on it if that hasn't finished by the time it opens:
+        ICUUtils.loadICUDataAsync(wrappedContext);
     }
 
     public android.content.Context getWrappedContext() {
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.android;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.couchbase.lite.internal.database.DatabasePlatformSupport;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Android implementation of DatabasePlatformSupport. Besides telling the storage engine whether
+ * it is running on the main thread, it provides the Executor that delivers work to the main
+ * thread, so listeners can hand their callbacks off to the UI without blocking the thread
+ * that did the work.
+ */
+public class AndroidPlatformSupport implements DatabasePlatformSupport {
+    private static final Executor mainThreadExecutor = new HandlerExecutor(
+            new Handler(Looper.getMainLooper()));
+
+    @Override
+    public boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    /**
+     * Returns an Executor that runs tasks on the main (UI) thread.
+     */
+    public static Executor getMainThreadExecutor() {
+        return mainThreadExecutor;
+    }
+
+    /**
+     * Returns an Executor that runs tasks on the thread of the given Looper.
+     */
+    public static Executor getLooperExecutor(Looper looper) {
+        if (looper == Looper.getMainLooper())
+            return mainThreadExecutor;
+        return new HandlerExecutor(new Handler(looper));
+    }
+
+    private static class HandlerExecutor implements Executor {
+        private final Handler handler;
+
+        HandlerExecutor(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (!handler.post(command))
+                throw new RejectedExecutionException(
+                        handler + " is shutting down");
+        }
+    }
+}
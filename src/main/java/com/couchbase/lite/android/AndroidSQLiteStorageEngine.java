@@ -15,8 +15,6 @@
  */
 package com.couchbase.lite.android;
 
-import android.os.Looper;
-
 import com.couchbase.lite.internal.database.DatabasePlatformSupport;
 import com.couchbase.lite.storage.SQLiteStorageEngineBase;
 import com.couchbase.lite.util.ICUUtils;
@@ -35,13 +33,6 @@ public class AndroidSQLiteStorageEngine extends SQLiteStorageEngineBase {
         return platformSupport;
     }
 
-    private class AndroidPlatformSupport implements DatabasePlatformSupport {
-        @Override
-        public boolean isMainThread() {
-            return Looper.myLooper() == Looper.getMainLooper();
-        }
-    }
-
     @Override
     protected String getICUDatabasePath() {
         return ICUUtils.getICUDatabasePath(context);
@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.android;
+
+import android.os.Process;
+
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.View;
+import com.couchbase.lite.util.Log;
+import com.couchbase.lite.util.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a set of views indexed in the background so that the first query after a large
+ * replication doesn't have to block on the whole catch-up.
+ *
+ * The indexer listens to database changes and, once a view falls more than maxLag sequences
+ * behind the database, updates its index on a single thread with a slightly lowered priority.
+ * Bursts of changes are coalesced into one update per updateDelay.
+ */
+public class BackgroundIndexer implements Database.ChangeListener {
+    public static final String TAG = Log.TAG_VIEW;
+
+    public static final long DEFAULT_MAX_LAG = 100;
+    public static final long DEFAULT_UPDATE_DELAY_MS = 500;
+    public static final int DEFAULT_THREAD_PRIORITY =
+            Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE;
+
+    private final Database database;
+    private final List<String> viewNames = new CopyOnWriteArrayList<String>();
+    private final AtomicBoolean updateScheduled = new AtomicBoolean(false);
+    private long maxLag = DEFAULT_MAX_LAG;
+    private long updateDelay = DEFAULT_UPDATE_DELAY_MS;
+    private int threadPriority = DEFAULT_THREAD_PRIORITY;
+    private ScheduledExecutorService executor;
+
+    public BackgroundIndexer(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Number of sequences a view may fall behind the database before it is re-indexed.
+     * Use 0 to index after every change.
+     */
+    public void setMaxLag(long maxLag) {
+        this.maxLag = maxLag;
+    }
+
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    /**
+     * Delay, in milliseconds, used to coalesce a burst of changes into a single update.
+     */
+    public void setUpdateDelay(long updateDelay) {
+        this.updateDelay = updateDelay;
+    }
+
+    public long getUpdateDelay() {
+        return updateDelay;
+    }
+
+    /**
+     * Linux priority (see android.os.Process) of the indexing thread, applied on the next start().
+     * Each index update runs in a database transaction, so a priority as low as
+     * THREAD_PRIORITY_BACKGROUND can leave writers on foreground threads, including the UI
+     * thread, waiting for a thread that rarely gets scheduled.
+     */
+    public void setThreadPriority(int threadPriority) {
+        this.threadPriority = threadPriority;
+    }
+
+    public int getThreadPriority() {
+        return threadPriority;
+    }
+
+    /**
+     * Adds a view to be kept up to date. The view's map function must already be set.
+     */
+    public void addView(String viewName) {
+        if (!viewNames.contains(viewName))
+            viewNames.add(viewName);
+        scheduleUpdate();
+    }
+
+    public void removeView(String viewName) {
+        viewNames.remove(viewName);
+    }
+
+    public synchronized void start() {
+        if (executor != null)
+            return;
+        ScheduledThreadPoolExecutor executor =
+                new ScheduledThreadPoolExecutor(1, new BackgroundThreadFactory(threadPriority));
+        // Don't run a pending delayed update once stop() has been called:
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+        database.addChangeListener(this);
+        scheduleUpdate();
+    }
+
+    /**
+     * Stops indexing and waits for an update in progress to finish, so that the database can be
+     * closed as soon as this returns.
+     */
+    public void stop() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = this.executor;
+            if (executor == null)
+                return;
+            database.removeChangeListener(this);
+            this.executor = null;
+            updateScheduled.set(false);
+        }
+        Utils.shutdownAndAwaitTermination(executor);
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Returns how many sequences the view is behind the database, or -1 if the view
+     * doesn't exist.
+     */
+    public long getLag(String viewName) {
+        View view = database.getExistingView(viewName);
+        if (view == null)
+            return -1;
+        return Math.max(0, database.getLastSequenceNumber() - view.getLastSequenceIndexed());
+    }
+
+    @Override
+    public void changed(Database.ChangeEvent event) {
+        scheduleUpdate();
+    }
+
+    private void scheduleUpdate() {
+        synchronized (this) {
+            if (executor == null || !updateScheduled.compareAndSet(false, true))
+                return;
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    updateScheduled.set(false);
+                    updateIndexes();
+                }
+            }, updateDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void updateIndexes() {
+        if (!database.isOpen())
+            return;
+
+        List<String> staleViews = new ArrayList<String>();
+        for (String viewName : viewNames) {
+            if (getLag(viewName) > maxLag)
+                staleViews.add(viewName);
+        }
+
+        for (String viewName : staleViews) {
+            if (Thread.currentThread().isInterrupted() || !isRunning() || !database.isOpen())
+                return;
+            View view = database.getExistingView(viewName);
+            if (view == null)
+                continue;
+            try {
+                long start = System.currentTimeMillis();
+                view.updateIndex();
+                Log.v(TAG, "%s: Updated index of view %s in %d ms (lag=%d)", this, viewName,
+                        System.currentTimeMillis() - start, getLag(viewName));
+            } catch (CouchbaseLiteException e) {
+                Log.e(TAG, "%s: Unable to update index of view %s", e, this, viewName);
+            }
+        }
+    }
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final int priority;
+
+        BackgroundThreadFactory(int priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(priority);
+                    r.run();
+                }
+            }, "CBLBackgroundIndexer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2016 Couchbase, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.couchbase.lite.android;
+
+import com.couchbase.lite.Database;
+import com.couchbase.lite.DocumentChange;
+import com.couchbase.lite.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Database.ChangeListener that rate-limits and coalesces the events delivered to a slower
+ * listener, such as one that updates the UI.
+ *
+ * Register the CoalescingChangeListener with Database.addChangeListener(). Events that arrive
+ * while a delivery is pending or in progress are merged into one ChangeEvent, keeping only the
+ * latest DocumentChange per document. At most one event is delivered per minInterval, on the
+ * given Executor (the main thread by default). If more than maxPendingChanges documents are
+ * pending, the oldest changes are dropped so a stalled listener can't grow memory unbounded.
+ */
+public class CoalescingChangeListener implements Database.ChangeListener {
+    public static final String TAG = Log.TAG_DATABASE;
+
+    public static final int DEFAULT_MAX_PENDING_CHANGES = 10000;
+
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CBLChangeCoalescer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Database.ChangeListener listener;
+    private final long minInterval;
+    private final Executor executor;
+    private final int maxPendingChanges;
+
+    private final Object lock = new Object();
+    private LinkedHashMap<String, DocumentChange> pendingChanges =
+            new LinkedHashMap<String, DocumentChange>();
+    private Database pendingSource;
+    private boolean pendingExternal = true;
+    private boolean scheduled;
+    private boolean delivering;
+    private long lastDeliveryTime;
+
+    private final AtomicLong deliveredEventCount = new AtomicLong();
+    private final AtomicLong mergedEventCount = new AtomicLong();
+    private final AtomicLong droppedChangeCount = new AtomicLong();
+
+    /**
+     * Delivers to the listener on the main thread, at most once per minInterval milliseconds.
+     */
+    public CoalescingChangeListener(Database.ChangeListener listener, long minInterval) {
+        this(listener, minInterval, AndroidPlatformSupport.getMainThreadExecutor(),
+                DEFAULT_MAX_PENDING_CHANGES);
+    }
+
+    public CoalescingChangeListener(Database.ChangeListener listener, long minInterval,
+                                    Executor executor, int maxPendingChanges) {
+        if (listener == null || executor == null)
+            throw new IllegalArgumentException("listener and executor must not be null");
+        if (maxPendingChanges <= 0)
+            throw new IllegalArgumentException("maxPendingChanges must be positive");
+        this.listener = listener;
+        this.minInterval = minInterval;
+        this.executor = executor;
+        this.maxPendingChanges = maxPendingChanges;
+    }
+
+    /**
+     * Number of ChangeEvents delivered to the wrapped listener.
+     */
+    public long getDeliveredEventCount() {
+        return deliveredEventCount.get();
+    }
+
+    /**
+     * Number of incoming ChangeEvents that were merged into an already pending delivery instead
+     * of getting one of their own.
+     */
+    public long getMergedEventCount() {
+        return mergedEventCount.get();
+    }
+
+    /**
+     * Number of DocumentChanges dropped because more than maxPendingChanges were pending.
+     */
+    public long getDroppedChangeCount() {
+        return droppedChangeCount.get();
+    }
+
+    /**
+     * Number of distinct documents waiting to be delivered.
+     */
+    public int getPendingChangeCount() {
+        synchronized (lock) {
+            return pendingChanges.size();
+        }
+    }
+
+    @Override
+    public void changed(Database.ChangeEvent event) {
+        synchronized (lock) {
+            // An event arriving while nothing is pending starts a new delivery of its own, even
+            // if another delivery is in progress:
+            if (!pendingChanges.isEmpty())
+                mergedEventCount.incrementAndGet();
+            pendingSource = event.getSource();
+            pendingExternal = pendingExternal && event.isExternal();
+            for (DocumentChange change : event.getChanges()) {
+                // Re-insert so the document moves to the position of its latest change:
+                pendingChanges.remove(change.getDocumentId());
+                pendingChanges.put(change.getDocumentId(), change);
+            }
+            Iterator<String> it = pendingChanges.keySet().iterator();
+            while (pendingChanges.size() > maxPendingChanges && it.hasNext()) {
+                it.next();
+                it.remove();
+                droppedChangeCount.incrementAndGet();
+            }
+            scheduleDeliveryLocked();
+        }
+    }
+
+    private void scheduleDeliveryLocked() {
+        if (scheduled || delivering || pendingChanges.isEmpty())
+            return;
+        scheduled = true;
+        long delay = Math.max(0, lastDeliveryTime + minInterval - System.currentTimeMillis());
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Log.e(TAG, "%s: Unable to deliver database changes", e,
+                            CoalescingChangeListener.this);
+                    synchronized (lock) {
+                        scheduled = false;
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void deliver() {
+        Database.ChangeEvent event;
+        synchronized (lock) {
+            scheduled = false;
+            if (pendingChanges.isEmpty())
+                return;
+            List<DocumentChange> changes = new ArrayList<DocumentChange>(pendingChanges.values());
+            event = new Database.ChangeEvent(pendingSource, pendingExternal, changes);
+            pendingChanges = new LinkedHashMap<String, DocumentChange>();
+            pendingExternal = true;
+            delivering = true;
+        }
+
+        try {
+            listener.changed(event);
+            deliveredEventCount.incrementAndGet();
+        } finally {
+            synchronized (lock) {
+                delivering = false;
+                lastDeliveryTime = System.currentTimeMillis();
+                scheduleDeliveryLocked();
+            }
+        }
+    }
+}
@@ -18,56 +18,149 @@ import android.content.Context;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 /**
  * Created by pasin on 11/22/15.
  */
 public class ICUUtils {
+    private static final String SYSTEM_ICU_DIR = "/system/usr";
+    private static final String ICU_DIR = "icu";
+    private static final String ICU_DATA_FILE = "icudt53l.dat";
+    private static final String ICU_DATA_ASSET = "icudt53l.zip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Object lock = new Object();
+    // Extractions by destination directory, as different Contexts can have different files dirs:
+    private static final Map<String, FutureTask<String>> loadTasks =
+            new HashMap<String, FutureTask<String>>();
+
+    /**
+     * Returns the directory containing the ICU data, extracting it from the assets first if
+     * needed. Blocks until an extraction started by {@link #loadICUDataAsync(Context)} is done.
+     */
     public static String getICUDatabasePath(Context context) {
-        if (new File("/system/usr/icu/icudt53l.dat").exists())
-            return "/system/usr";
-        else {
-            File destDir = context.getFilesDir();
-            try {
-                loadICUData(context, destDir);
-            } catch (IOException e) {
-                Log.e(Log.TAG_DATABASE, "Cannot load ICU database file", e);
-                return null;
-            }
-            return destDir.getAbsolutePath();
+        try {
+            return loadICUDataAsync(context).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e(Log.TAG_DATABASE, "Interrupted while loading ICU database file", e);
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(Log.TAG_DATABASE, "Cannot load ICU database file", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Starts locating or extracting the ICU data into the context's files directory on a
+     * background thread, unless that has already started. The AndroidContext constructor calls
+     * this so that the extraction overlaps app start-up instead of blocking the first SQLite
+     * database open; apps that create their Manager later can call it from Application.onCreate().
+     * Only a call to {@link Context#getFilesDir()} happens on the calling thread.
+     */
+    public static Future<String> loadICUDataAsync(final Context context) {
+        final File destDir = context.getFilesDir();
+        synchronized (lock) {
+            FutureTask<String> loadTask = loadTasks.get(destDir.getAbsolutePath());
+            if (loadTask != null && isUsable(loadTask))
+                return loadTask;
+
+            loadTask = new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    if (new File(SYSTEM_ICU_DIR + "/" + ICU_DIR + "/" + ICU_DATA_FILE).exists())
+                        return SYSTEM_ICU_DIR;
+                    loadICUData(context, destDir);
+                    return destDir.getAbsolutePath();
+                }
+            });
+            loadTasks.put(destDir.getAbsolutePath(), loadTask);
+            Thread thread = new Thread(loadTask, "CBLICULoader");
+            thread.setDaemon(true);
+            thread.start();
+            return loadTask;
+        }
+    }
+
+    /**
+     * A task can be reused while it is running, or if it succeeded and its data file still
+     * exists; app data cleanup may have deleted the file since.
+     */
+    private static boolean isUsable(Future<String> task) {
+        if (!task.isDone())
+            return true;
+        try {
+            String path = task.get();
+            return SYSTEM_ICU_DIR.equals(path) ||
+                    new File(path, ICU_DIR + "/" + ICU_DATA_FILE).exists();
+        } catch (Exception e) {
+            return false;
         }
     }
 
     private static void loadICUData(Context context, File destDir) throws IOException {
-        OutputStream out = null;
+        File icuDir = new File(destDir, ICU_DIR);
+        File icuDataFile = new File(icuDir, ICU_DATA_FILE);
+        File tmpFile = new File(icuDir, ICU_DATA_FILE + ".tmp");
+
         ZipInputStream in = null;
-        File icuDir = new File(destDir, "icu");
-        File icuDataFile = new File(icuDir, "icudt53l.dat");
+        FileOutputStream out = null;
         try {
-            if (!icuDir.exists()) icuDir.mkdirs();
-            if (!icuDataFile.exists()) {
-                in = new ZipInputStream(context.getAssets().open("icudt53l.zip"));
-                in.getNextEntry();
-                out =  new FileOutputStream(icuDataFile);
-                byte[] buf = new byte[1024];
-                int len;
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
-                }
+            in = new ZipInputStream(context.getAssets().open(ICU_DATA_ASSET));
+            ZipEntry entry = in.getNextEntry();
+            if (entry == null)
+                throw new IOException("No ICU data found in " + ICU_DATA_ASSET);
+
+            // Files extracted by earlier versions may be truncated, as they were written in place:
+            if (icuDataFile.exists()) {
+                if (entry.getSize() < 0 || icuDataFile.length() == entry.getSize())
+                    return;
+                Log.w(Log.TAG_DATABASE, "Replacing incomplete ICU database file " + icuDataFile);
             }
+
+            if (!icuDir.exists() && !icuDir.mkdirs())
+                throw new IOException("Cannot create directory " + icuDir);
+
+            // Extract to a temporary file and rename it into place, so that a crash can't leave
+            // a truncated data file behind:
+            out = new FileOutputStream(tmpFile);
+            CRC32 crc = new CRC32();
+            long size = 0;
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
+                crc.update(buf, 0, len);
+                size += len;
+            }
+            out.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+
+            if ((entry.getSize() >= 0 && size != entry.getSize()) ||
+                    (entry.getCrc() >= 0 && crc.getValue() != entry.getCrc()))
+                throw new IOException("Checksum mismatch extracting " + ICU_DATA_FILE);
+
+            if (!tmpFile.renameTo(icuDataFile))
+                throw new IOException("Cannot rename " + tmpFile + " to " + icuDataFile);
         } catch (IOException e) {
-            if (icuDataFile.exists())
-                icuDataFile.delete();
+            tmpFile.delete();
             throw e;
         } finally {
             if (in != null)
                 in.close();
-            if (out != null) {
-                out.flush();
+            if (out != null)
                 out.close();
-            }
         }
     }
 }